@@ -1,7 +1,9 @@
 package com.lilium.sudoku.mnist;
 
+import com.lilium.sudoku.mnist.evaluation.EvalUtil;
+import com.lilium.sudoku.mnist.preprocessing.CellNormalizer;
+import nu.pattern.OpenCV;
 import org.apache.log4j.BasicConfigurator;
-import org.datavec.image.loader.NativeImageLoader;
 import org.deeplearning4j.datasets.iterator.impl.ListDataSetIterator;
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
@@ -16,10 +18,11 @@ import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
 import org.nd4j.linalg.dataset.DataSet;
 import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import org.nd4j.linalg.factory.Nd4j;
 import org.nd4j.linalg.learning.config.Nesterovs;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
 
 import java.io.File;
 import java.io.IOException;
@@ -29,28 +32,30 @@ import java.util.Random;
 
 public class MnistClassifier {
     private static final String RESOURCES_FOLDER_PATH = "D:\\Development\\IntelliJ\\opencv-sudoku-solver\\src\\main\\resources\\mnist";
-    private static final int HEIGHT = 60;
-    private static final int WIDTH = 60;
-    private static final int N_SAMPLES_TRAINING = 204;
-    private static final int N_SAMPLES_TESTING = 204;
     private static final int N_OUTCOMES = 10;
 
     public static void main(final String args[]) throws IOException {
         BasicConfigurator.configure();
+        OpenCV.loadShared();
 
-        DataSetIterator dataSetIterator = getDataSetIterator(RESOURCES_FOLDER_PATH + "\\training", N_SAMPLES_TRAINING);
+        DataSetIterator dataSetIterator = getDataSetIterator(RESOURCES_FOLDER_PATH + "\\training");
         buildModel(dataSetIterator);
     }
 
-    private static DataSetIterator getDataSetIterator(final String folderPath, final int nSamples) throws IOException {
+    private static DataSetIterator getDataSetIterator(final String folderPath) throws IOException {
         final File folder = new File(folderPath);
         final File[] digitFolders = folder.listFiles();
 
-        final NativeImageLoader nil = new NativeImageLoader(HEIGHT, WIDTH);
-        final ImagePreProcessingScaler scaler = new ImagePreProcessingScaler(0,1);
+        // Upper bound of samples, images in which no digit is found are skipped later on
+        int nFiles = 0;
+        for (final File digitFolder : digitFolders) {
+            nFiles += digitFolder.listFiles().length;
+        }
 
-        INDArray input = Nd4j.create(nSamples, HEIGHT*WIDTH);
-        INDArray output = Nd4j.create(nSamples, N_OUTCOMES);
+        // Same normalization as used on live cells, pixels are written straight into the features buffer
+        final CellNormalizer normalizer = new CellNormalizer();
+        final float[] features = new float[nFiles * CellNormalizer.PIXELS];
+        final int[] labels = new int[nFiles];
 
         int n = 0;
         for (final File digitFolder: digitFolders) {
@@ -58,13 +63,29 @@ public class MnistClassifier {
             final File[] imageFiles = digitFolder.listFiles();
 
             for (final File imgFile : imageFiles) {
-                final INDArray img = nil.asRowVector(imgFile);
-                scaler.transform(img);
-                input.putRow(n, img);
-                output.put(n, labelDigit, 1.0);
-                n++;
+                final Mat img = Imgcodecs.imread(imgFile.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
+                // Inference treats such cells as blank, so they must not end up in the data set as digits
+                if (normalizer.normalize(img, features, n * CellNormalizer.PIXELS)) {
+                    labels[n] = labelDigit;
+                    n++;
+                } else {
+                    System.out.println("No digit found, skipping " + imgFile.getAbsolutePath());
+                }
+                img.release();
             }
         }
+        normalizer.release();
+
+        if (n == 0) {
+            throw new IllegalStateException("No digit found in any of the images in " + folderPath);
+        }
+
+        // Only first n rows hold real samples
+        final INDArray input = EvalUtil.createFeatures(features, n);
+        final INDArray output = Nd4j.create(n, N_OUTCOMES);
+        for (int i = 0; i < n; i++) {
+            output.put(i, labels[i], 1.0);
+        }
 
         // Joining input and output matrices into a dataset
         final DataSet dataSet = new DataSet(input, output);
@@ -83,7 +104,7 @@ public class MnistClassifier {
                 .updater(new Nesterovs(0.006, 0.9))
                 .l2(1e-4).list()
                 .layer(new DenseLayer.Builder()
-                        .nIn(HEIGHT*WIDTH).nOut(1000).activation(Activation.RELU)
+                        .nIn(CellNormalizer.PIXELS).nOut(1000).activation(Activation.RELU)
                         .weightInit(WeightInit.XAVIER).build())
                 .layer(new OutputLayer.Builder(LossFunctions.LossFunction.NEGATIVELOGLIKELIHOOD)
                         .nIn(1000).nOut(N_OUTCOMES).activation(Activation.SOFTMAX)
@@ -97,7 +118,7 @@ public class MnistClassifier {
         model.fit(dsi);
 
         //Evaluation
-        DataSetIterator testDsi = getDataSetIterator(RESOURCES_FOLDER_PATH+"\\testing", N_SAMPLES_TESTING);
+        DataSetIterator testDsi = getDataSetIterator(RESOURCES_FOLDER_PATH+"\\testing");
         Evaluation eval = model.evaluate(testDsi);
         System.out.print(eval.stats());
 
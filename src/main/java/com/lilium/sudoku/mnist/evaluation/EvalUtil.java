@@ -1,59 +1,81 @@
 package com.lilium.sudoku.mnist.evaluation;
 
-import org.datavec.image.loader.NativeImageLoader;
+import com.lilium.sudoku.mnist.preprocessing.CellNormalizer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.deeplearning4j.util.ModelSerializer;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
-import org.nd4j.linalg.dataset.api.preprocessor.ImagePreProcessingScaler;
 import org.nd4j.linalg.factory.Nd4j;
-import org.nd4j.linalg.indexing.BooleanIndexing;
-import org.nd4j.linalg.indexing.conditions.Conditions;
-import org.opencv.core.Mat;
 
 import java.io.IOException;
 
 public final class EvalUtil {
-    private static final int HEIGHT = 60;
-    private static final int WIDTH = 60;
-    private static final int N_OUTCOMES = 10;
-
-    private static final NativeImageLoader IMAGE_LOADER = new NativeImageLoader(HEIGHT, WIDTH);
-    private static final ImagePreProcessingScaler IMAGE_PRE_PROCESSING_SCALER = new ImagePreProcessingScaler(0, 1);
-
     private EvalUtil() {}
 
-    public static int evaluateImage(final Mat image, final MultiLayerNetwork model) throws IOException {
-        try (final INDArray input = Nd4j.create(1, HEIGHT * WIDTH)) {
-            final INDArray imageArray = IMAGE_LOADER.asRowVector(image);
-            IMAGE_PRE_PROCESSING_SCALER.transform(imageArray);
-            input.putRow(0, imageArray);
-
-            // Joining input and output matrices into a dataset
-            final DataSet dataSet = new DataSet(input, Nd4j.create(1, N_OUTCOMES));
-
-            // Data set contains one value only
-            final INDArray predicted = model.output(
-                    dataSet.get(0).getFeatures(),
-                    false
-            );
-            final INDArray predictedValue = BooleanIndexing.firstIndex(
-                    predicted,
-                    Conditions.equals(predicted.maxNumber())
-            );
+    /**
+     * Estimate digits of normalized cells in one pass through the network.
+     *
+     * @param features Buffer filled by {@link CellNormalizer}, one cell after another.
+     * @param nCells Number of cells stored at the beginning of the buffer.
+     * @param model Trained network.
+     * @return Returns estimated digit for every cell.
+     */
+    public static int[] evaluateCells(final float[] features, final int nCells, final MultiLayerNetwork model) {
+        if (nCells == 0) {
+            return new int[0];
+        }
 
-            return Integer.parseInt(predictedValue.toString());
+        try (final INDArray input = createFeatures(features, nCells);
+             final INDArray predicted = model.output(input, false);
+             final INDArray predictedValues = Nd4j.argMax(predicted, 1)) {
+            return predictedValues.toIntVector();
         }
     }
 
+    /**
+     * Create network input from the first rows of a buffer filled by {@link CellNormalizer}. Only those rows are copied
+     * into native memory, the rest of the buffer is not touched.
+     *
+     * @param features Buffer filled by {@link CellNormalizer}, one cell after another.
+     * @param nCells Number of cells stored at the beginning of the buffer.
+     * @return Returns matrix with one row per cell.
+     */
+    public static INDArray createFeatures(final float[] features, final int nCells) {
+        final INDArray input = Nd4j.createUninitialized(DataType.FLOAT, nCells, CellNormalizer.PIXELS);
+        input.data().asNioFloat().put(features, 0, nCells * CellNormalizer.PIXELS);
+        return input;
+    }
+
+    /**
+     * Load trained network and check that it accepts cells produced by {@link CellNormalizer}.
+     *
+     * @return Returns trained network or null if it could not be loaded.
+     * @throws IllegalStateException If network input size does not match normalized cell size.
+     */
     public static MultiLayerNetwork loadModel() {
+        final MultiLayerNetwork model;
         try {
-            return ModelSerializer.restoreMultiLayerNetwork(
+            model = ModelSerializer.restoreMultiLayerNetwork(
                     "D:\\Development\\IntelliJ\\opencv-sudoku-solver\\src\\main\\resources\\models\\trained.tar"
             );
         } catch (IOException e) {
             e.printStackTrace();
             return null;
         }
+
+        // Model trained on differently normalized cells would otherwise fail on first evaluation with a shape error
+        final int inputSize = model.layerInputSize(0);
+        if (inputSize != CellNormalizer.PIXELS) {
+            throw new IllegalStateException(String.format(
+                    "Trained model expects %d inputs but normalized cells have %d pixels (%dx%d), "
+                            + "retrain it with MnistClassifier",
+                    inputSize,
+                    CellNormalizer.PIXELS,
+                    CellNormalizer.SIZE,
+                    CellNormalizer.SIZE
+            ));
+        }
+
+        return model;
     }
 }
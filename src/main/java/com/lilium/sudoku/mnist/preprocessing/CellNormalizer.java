@@ -0,0 +1,248 @@
+package com.lilium.sudoku.mnist.preprocessing;
+
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.imgproc.Moments;
+
+/**
+ * Normalization stage shared by training and inference. Every cell image (gray, white digit on black background) goes
+ * through the same steps:
+ *      - Cut thin grid line fragments touching the cell border out of the thresholded cell
+ *      - Find connected components and pick the digit (remaining grid lines and noise are ignored)
+ *      - Crop to the bounding box of the digit
+ *      - Scale it to fit into a {@link #DIGIT_SIZE} box keeping the aspect ratio
+ *      - Center it by its mass inside a {@link #SIZE} x {@link #SIZE} canvas
+ *      - Write pixels scaled to [0, 1] directly into provided float buffer
+ *
+ * Working matrices are reused between calls, so one instance should not be shared between threads.
+ */
+public final class CellNormalizer {
+    public static final int SIZE = 28;
+    public static final int PIXELS = SIZE * SIZE;
+    public static final int DIGIT_SIZE = 20;
+    /**
+     * Components touching the cell border with longer side at least this many times the shorter one, spanning at least
+     * {@link #LINE_SPAN} of the cell along the longer side, are treated as grid lines.
+     */
+    private static final int LINE_ASPECT_RATIO = 4;
+    private static final double LINE_SPAN = 0.8;
+    /**
+     * Components lower than this part of the cell height are treated as noise.
+     */
+    private static final int MIN_HEIGHT_DIVISOR = 5;
+    /**
+     * Strokes thinner than this part of the cell side (and touching the border) are treated as grid line fragments.
+     */
+    private static final int FRAGMENT_THICKNESS_DIVISOR = 15;
+
+    private final Mat binary = new Mat();
+    private final Mat opened = new Mat();
+    private final Mat thin = new Mat();
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    private final Mat mask = new Mat();
+    private final Mat digit = new Mat();
+    private final Mat canvas = Mat.zeros(SIZE, SIZE, CvType.CV_8UC1);
+    private Mat kernel = new Mat();
+    private int kernelSize;
+
+    private final int[] componentStats = new int[Imgproc.CC_STAT_MAX];
+    private final byte[] pixels = new byte[PIXELS];
+
+    /**
+     * Normalize forwarded cell and write the result into the buffer.
+     *
+     * @param cell Gray cell image (CV_8UC1) with white digit on black background.
+     * @param buffer Buffer into which {@link #PIXELS} values are written.
+     * @param offset Position in the buffer from which writing starts.
+     * @return Returns true if digit was found in the cell. If not, written values are all zeros.
+     */
+    public boolean normalize(final Mat cell, final float[] buffer, final int offset) {
+        canvas.setTo(Scalar.all(0));
+
+        final int label = findDigitLabel(cell);
+        if (label > 0) {
+            drawDigit(cell, label);
+        }
+
+        canvas.get(0, 0, pixels);
+        for (int i = 0; i < PIXELS; i++) {
+            buffer[offset + i] = (pixels[i] & 0xFF) / 255f;
+        }
+
+        return label > 0;
+    }
+
+    /**
+     * Release native memory held by working matrices.
+     */
+    public void release() {
+        binary.release();
+        opened.release();
+        thin.release();
+        kernel.release();
+        labels.release();
+        stats.release();
+        centroids.release();
+        mask.release();
+        digit.release();
+        canvas.release();
+    }
+
+    // region Helpers
+    /**
+     * Used to find label of the component holding the digit. Following components are rejected:
+     *      - Grid lines (touching cell border, long, thin and spanning most of the cell)
+     *      - Noise (lower than fifth of the cell height)
+     *      - Components not reaching into the central half of the cell
+     * From the remaining ones the biggest one is taken.
+     *
+     * @param cell Cell image.
+     * @return Returns label of the digit component or 0 if there is none.
+     */
+    private int findDigitLabel(final Mat cell) {
+        // Otsu picks the threshold on its own, works for both live cells and JPEG artifacts in training images
+        Imgproc.threshold(cell, binary, 0, 255, Imgproc.THRESH_BINARY | Imgproc.THRESH_OTSU);
+        removeBorderFragments();
+        final int nLabels = Imgproc.connectedComponentsWithStats(binary, labels, stats, centroids, 8, CvType.CV_32S);
+
+        // Central half of the cell
+        final Rect center = new Rect(cell.width() / 4, cell.height() / 4, cell.width() / 2, cell.height() / 2);
+
+        int maxArea = 0;
+        int digitLabel = 0;
+        // Label 0 is the background
+        for (int i = 1; i < nLabels; i++) {
+            stats.get(i, 0, componentStats);
+            final int left = componentStats[Imgproc.CC_STAT_LEFT];
+            final int top = componentStats[Imgproc.CC_STAT_TOP];
+            final int width = componentStats[Imgproc.CC_STAT_WIDTH];
+            final int height = componentStats[Imgproc.CC_STAT_HEIGHT];
+            final int area = componentStats[Imgproc.CC_STAT_AREA];
+
+            // Thin strokes touching the border (e.g. a "1" cut off-center) are kept unless they span the whole cell
+            final boolean lineLike = touchesBorder(binary, left, top, width, height)
+                    && Math.max(width, height) >= LINE_ASPECT_RATIO * Math.min(width, height)
+                    && (width >= height
+                        ? width >= LINE_SPAN * cell.width()
+                        : height >= LINE_SPAN * cell.height());
+            final boolean noise = height < cell.height() / MIN_HEIGHT_DIVISOR;
+            // Bounding box only has to overlap the center, digits cut off-center by imprecise perspective crop have
+            // their centroid pulled towards the edge
+            final boolean overlapsCenter = left < center.x + center.width && left + width > center.x
+                    && top < center.y + center.height && top + height > center.y;
+
+            if (!lineLike && !noise && overlapsCenter && area > maxArea) {
+                maxArea = area;
+                digitLabel = i;
+            }
+        }
+
+        return digitLabel;
+    }
+
+    /**
+     * Used to cut thin grid line fragments touching the cell border out of the thresholded cell. Morphological opening
+     * keeps only strokes thicker than the kernel, whatever is left over and touches the border is a fragment. This way
+     * a fragment joined to the digit is separated from it and does not end up in the digit bounding box.
+     */
+    private void removeBorderFragments() {
+        final int size = Math.max(3, Math.min(binary.width(), binary.height()) / FRAGMENT_THICKNESS_DIVISOR) | 1;
+        if (size != kernelSize) {
+            kernel.release();
+            kernel = Imgproc.getStructuringElement(Imgproc.MORPH_RECT, new Size(size, size));
+            kernelSize = size;
+        }
+
+        Imgproc.morphologyEx(binary, opened, Imgproc.MORPH_OPEN, kernel);
+        Core.subtract(binary, opened, thin);
+
+        final int nLabels = Imgproc.connectedComponentsWithStats(thin, labels, stats, centroids, 8, CvType.CV_32S);
+        for (int i = 1; i < nLabels; i++) {
+            stats.get(i, 0, componentStats);
+            if (touchesBorder(
+                    binary,
+                    componentStats[Imgproc.CC_STAT_LEFT],
+                    componentStats[Imgproc.CC_STAT_TOP],
+                    componentStats[Imgproc.CC_STAT_WIDTH],
+                    componentStats[Imgproc.CC_STAT_HEIGHT]
+            )) {
+                Core.compare(labels, Scalar.all(i), mask, Core.CMP_EQ);
+                binary.setTo(Scalar.all(0), mask);
+            }
+        }
+    }
+
+    /**
+     * Crop the digit component, scale it and draw it on the canvas centered by its mass.
+     *
+     * @param cell Cell image.
+     * @param label Label of the digit component.
+     */
+    private void drawDigit(final Mat cell, final int label) {
+        stats.get(label, 0, componentStats);
+        final Rect box = new Rect(
+                componentStats[Imgproc.CC_STAT_LEFT],
+                componentStats[Imgproc.CC_STAT_TOP],
+                componentStats[Imgproc.CC_STAT_WIDTH],
+                componentStats[Imgproc.CC_STAT_HEIGHT]
+        );
+
+        // Keep only pixels of the digit component (other components inside bounding box are dropped)
+        final Mat labelsRoi = labels.submat(box);
+        final Mat cellRoi = cell.submat(box);
+        Core.compare(labelsRoi, Scalar.all(label), mask, Core.CMP_EQ);
+        digit.create(box.height, box.width, CvType.CV_8UC1);
+        digit.setTo(Scalar.all(0));
+        cellRoi.copyTo(digit, mask);
+        labelsRoi.release();
+        cellRoi.release();
+
+        // Center of mass of the cropped digit, moments scale linearly so it can be used after resizing
+        final Moments moments = Imgproc.moments(digit);
+        final double centerX = moments.get_m00() > 0 ? moments.get_m10() / moments.get_m00() : box.width / 2.0;
+        final double centerY = moments.get_m00() > 0 ? moments.get_m01() / moments.get_m00() : box.height / 2.0;
+
+        final double scale = (double) DIGIT_SIZE / Math.max(box.width, box.height);
+        final int scaledWidth = Math.max(1, (int) Math.round(box.width * scale));
+        final int scaledHeight = Math.max(1, (int) Math.round(box.height * scale));
+        final int x = clamp((int) Math.round(SIZE / 2.0 - centerX * scale), SIZE - scaledWidth);
+        final int y = clamp((int) Math.round(SIZE / 2.0 - centerY * scale), SIZE - scaledHeight);
+
+        // Resize straight into the canvas region, no intermediate matrix is needed
+        final Mat target = canvas.submat(new Rect(x, y, scaledWidth, scaledHeight));
+        Imgproc.resize(digit, target, target.size(), 0, 0, Imgproc.INTER_AREA);
+        target.release();
+    }
+
+    /**
+     * Check if forwarded bounding box touches border of the image.
+     *
+     * @param image Image containing the bounding box.
+     * @param left Left coordinate of the box.
+     * @param top Top coordinate of the box.
+     * @param width Width of the box.
+     * @param height Height of the box.
+     * @return Returns true if any side of the box lies on the image border.
+     */
+    private static boolean touchesBorder(final Mat image,
+                                         final int left,
+                                         final int top,
+                                         final int width,
+                                         final int height) {
+        return left == 0 || top == 0 || left + width == image.width() || top + height == image.height();
+    }
+
+    /**
+     * Clamp value into [0, max] range.
+     *
+     * @param value Value to clamp.
+     * @param max Max allowed value.
+     * @return Returns clamped value.
+     */
+    private static int clamp(final int value, final int max) {
+        return Math.max(0, Math.min(value, max));
+    }
+    // endregion
+}
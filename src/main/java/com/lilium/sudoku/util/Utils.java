@@ -1,13 +1,13 @@
 package com.lilium.sudoku.util;
 
 import com.lilium.sudoku.mnist.evaluation.EvalUtil;
+import com.lilium.sudoku.mnist.preprocessing.CellNormalizer;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.opencv.core.*;
 import org.opencv.imgcodecs.Imgcodecs;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.imgproc.Moments;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -122,6 +122,12 @@ public final class Utils {
         final int cellHeight = processedImage.height() / 9;
         final Size cellSize = new Size(cellWidth, cellHeight);
 
+        // Normalized cells are written one after another, positions (row * 9 + col) are kept to map estimations back
+        final CellNormalizer normalizer = new CellNormalizer();
+        final float[] features = new float[9 * 9 * CellNormalizer.PIXELS];
+        final int[] positions = new int[9 * 9];
+        int nCells = 0;
+
         for (int row = 0; row < 9; row++) {
             for (int col = 0; col < 9; col++) {
                 final double tempXPosition = col * cellWidth;
@@ -130,7 +136,7 @@ public final class Utils {
                 final Mat cell = new Mat(
                         processedImage,
                         new Rect(new Point(tempXPosition, tempYPosition), cellSize) // Which part to cut out
-                ).clone();
+                );
 
                 // Find non zero pixel count
                 final int count = Core.countNonZero(cell);
@@ -142,18 +148,24 @@ public final class Utils {
                     // Save cell image for debugging
                     saveImage(cell, "digits\\" + System.nanoTime() +".jpg");
 
-                    try {
-                        // Estimate cell value
-                        final int estimatedValue = trainedNetwork != null
-                                ? EvalUtil.evaluateImage(cell, trainedNetwork)
-                                : 1;
-                        matrix[row][col] = estimatedValue;
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                    // If no digit component is found cell is treated as blank
+                    if (normalizer.normalize(cell, features, nCells * CellNormalizer.PIXELS)) {
+                        positions[nCells++] = row * 9 + col;
                     }
                 }
+
+                cell.release();
             }
         }
+        normalizer.release();
+
+        // Estimate all cell values in one pass
+        final int[] estimatedValues = trainedNetwork != null
+                ? EvalUtil.evaluateCells(features, nCells, trainedNetwork)
+                : null;
+        for (int i = 0; i < nCells; i++) {
+            matrix[positions[i] / 9][positions[i] % 9] = estimatedValues != null ? estimatedValues[i] : 1;
+        }
 
         return matrix;
     }
@@ -0,0 +1,161 @@
+package com.lilium.sudoku.mnist.preprocessing;
+
+import nu.pattern.OpenCV;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CellNormalizerTest {
+    private static final int CELL_SIZE = 60;
+    private static final Scalar WHITE = new Scalar(255);
+
+    private CellNormalizer normalizer;
+
+    @BeforeAll
+    static void loadOpenCV() {
+        OpenCV.loadShared();
+    }
+
+    @BeforeEach
+    void setUp() {
+        normalizer = new CellNormalizer();
+    }
+
+    @AfterEach
+    void tearDown() {
+        normalizer.release();
+    }
+
+    @Test
+    void blankCellIsNotADigit() {
+        final float[] buffer = new float[CellNormalizer.PIXELS];
+        Arrays.fill(buffer, 0.5f);
+
+        assertFalse(normalizer.normalize(blankCell(), buffer, 0));
+        for (final float value : buffer) {
+            assertEquals(0f, value);
+        }
+    }
+
+    @Test
+    void offCenterDigitIsCenteredByMass() {
+        final Mat cell = blankCell();
+        Imgproc.circle(cell, new Point(20, 20), 7, WHITE, Imgproc.FILLED);
+        final float[] buffer = new float[CellNormalizer.PIXELS];
+
+        assertTrue(normalizer.normalize(cell, buffer, 0));
+
+        double mass = 0;
+        double massX = 0;
+        double massY = 0;
+        for (int y = 0; y < CellNormalizer.SIZE; y++) {
+            for (int x = 0; x < CellNormalizer.SIZE; x++) {
+                final float value = buffer[y * CellNormalizer.SIZE + x];
+                mass += value;
+                massX += value * x;
+                massY += value * y;
+            }
+        }
+        assertEquals(CellNormalizer.SIZE / 2.0, massX / mass, 1.0);
+        assertEquals(CellNormalizer.SIZE / 2.0, massY / mass, 1.0);
+    }
+
+    @Test
+    void edgeStripeNextToDigitIsIgnored() {
+        final float[] expected = new float[CellNormalizer.PIXELS];
+        assertTrue(normalizer.normalize(digitCell(), expected, 0));
+
+        // Stripe is bigger than the digit, so it would win if it was not rejected
+        final Mat cell = digitCell();
+        Imgproc.rectangle(cell, new Point(0, 0), new Point(3, CELL_SIZE - 1), WHITE, Imgproc.FILLED);
+        final float[] actual = new float[CellNormalizer.PIXELS];
+
+        assertTrue(normalizer.normalize(cell, actual, 0));
+        assertArrayEquals(expected, actual, 1e-6f);
+    }
+
+    @Test
+    void lineFragmentJoinedToDigitIsCutOff() {
+        final float[] expected = new float[CellNormalizer.PIXELS];
+        assertTrue(normalizer.normalize(digitCell(), expected, 0));
+
+        final Mat cell = digitCell();
+        Imgproc.rectangle(cell, new Point(0, 29), new Point(25, 30), WHITE, Imgproc.FILLED);
+        final float[] actual = new float[CellNormalizer.PIXELS];
+
+        assertTrue(normalizer.normalize(cell, actual, 0));
+        assertArrayEquals(expected, actual, 1e-6f);
+    }
+
+    @Test
+    void speckledBlankCellIsNotADigit() {
+        final Mat cell = blankCell();
+        Imgproc.rectangle(cell, new Point(28, 28), new Point(29, 29), WHITE, Imgproc.FILLED);
+        Imgproc.rectangle(cell, new Point(33, 24), new Point(35, 26), WHITE, Imgproc.FILLED);
+        Imgproc.rectangle(cell, new Point(22, 36), new Point(23, 37), WHITE, Imgproc.FILLED);
+        final float[] buffer = new float[CellNormalizer.PIXELS];
+        Arrays.fill(buffer, 0.5f);
+
+        assertFalse(normalizer.normalize(cell, buffer, 0));
+        for (final float value : buffer) {
+            assertEquals(0f, value);
+        }
+    }
+
+    @Test
+    void oneTouchingBorderIsKept() {
+        final Mat centered = blankCell();
+        Imgproc.rectangle(centered, new Point(27, 10), new Point(32, 44), WHITE, Imgproc.FILLED);
+        final float[] expected = new float[CellNormalizer.PIXELS];
+        assertTrue(normalizer.normalize(centered, expected, 0));
+
+        // Same 6x35 stroke shifted up to the border, as left by imprecise perspective crop
+        final Mat cell = blankCell();
+        Imgproc.rectangle(cell, new Point(27, 0), new Point(32, 34), WHITE, Imgproc.FILLED);
+        final float[] actual = new float[CellNormalizer.PIXELS];
+
+        assertTrue(normalizer.normalize(cell, actual, 0));
+        assertArrayEquals(expected, actual, 1e-6f);
+    }
+
+    @Test
+    void writingAtOffsetLeavesNeighboursUntouched() {
+        final float[] buffer = new float[3 * CellNormalizer.PIXELS];
+        Arrays.fill(buffer, -1f);
+
+        assertTrue(normalizer.normalize(digitCell(), buffer, CellNormalizer.PIXELS));
+
+        for (int i = 0; i < CellNormalizer.PIXELS; i++) {
+            assertEquals(-1f, buffer[i]);
+            assertEquals(-1f, buffer[2 * CellNormalizer.PIXELS + i]);
+        }
+        boolean hasDigit = false;
+        for (int i = CellNormalizer.PIXELS; i < 2 * CellNormalizer.PIXELS; i++) {
+            assertTrue(buffer[i] >= 0f && buffer[i] <= 1f);
+            hasDigit |= buffer[i] > 0f;
+        }
+        assertTrue(hasDigit);
+    }
+
+    // region Helpers
+    private static Mat blankCell() {
+        return Mat.zeros(CELL_SIZE, CELL_SIZE, CvType.CV_8UC1);
+    }
+
+    private static Mat digitCell() {
+        final Mat cell = blankCell();
+        Imgproc.rectangle(cell, new Point(25, 22), new Point(34, 37), WHITE, Imgproc.FILLED);
+        return cell;
+    }
+    // endregion
+}